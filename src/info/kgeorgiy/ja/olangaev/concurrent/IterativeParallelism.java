@@ -1,59 +1,289 @@
 package info.kgeorgiy.ja.olangaev.concurrent;
 
-import info.kgeorgiy.java.advanced.concurrent.ListIP;
+import info.kgeorgiy.java.advanced.concurrent.AdvancedIP;
 import info.kgeorgiy.java.advanced.mapper.ParallelMapper;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.*;
+import java.util.stream.IntStream;
 
-public class IterativeParallelism implements ListIP {
+public class IterativeParallelism implements AdvancedIP, AutoCloseable {
+    private static final int LEAVES_PER_THREAD = 4;
+    private static final int JOIN_WINDOW_PER_THREAD = 1 << 14;
+    private static final int STREAM_BLOCK_SIZE = 1 << 10;
+    private static final int PENDING_BLOCKS_PER_THREAD = 2;
+    private static final int CALIBRATION_ROUNDS = 16;
+    private static final int CALIBRATION_VALUES = 1 << 16;
     private final ParallelMapper parallelMapper;
+    private final ForkJoinPool forkJoinPool;
+    private final int poolThreads;
+    private final int inlineThreshold;
+    private final int minPerThread;
+    private volatile ParallelMapperImpl pool;
+    private boolean isClosed = false;
 
 
     public IterativeParallelism() {
-        parallelMapper = null;
+        this((ParallelMapper) null);
     }
 
     public IterativeParallelism(ParallelMapper parallelMapper) {
+        this(parallelMapper, 1);
+    }
+
+    /**
+     * Creates an instance that gives every thread at least {@code minPerThread} values:
+     * calls use fewer threads than requested on small inputs and run on the caller thread
+     * when there is not enough work for two threads.
+     *
+     * @param parallelMapper mapper to run tasks in or {@code null} to start new threads on every call
+     * @param minPerThread   minimum number of values per thread, for example {@link #calibrateMinPerThread()}
+     */
+    public IterativeParallelism(ParallelMapper parallelMapper, int minPerThread) {
+        this(parallelMapper, null, 0, 0, checkMinPerThread(minPerThread));
+    }
+
+    /**
+     * Creates an instance that runs every call as recursively split tasks in the given pool,
+     * so idle workers steal the remaining ranges instead of waiting for the slowest chunk.
+     * The {@code threads} argument of each call only bounds the splitting granularity.
+     *
+     * @param forkJoinPool pool to run tasks in
+     */
+    public IterativeParallelism(ForkJoinPool forkJoinPool) {
+        this(null, checkNotNull(forkJoinPool), 0, 0, 1);
+    }
+
+    /**
+     * Creates an instance with its own pool of {@code poolThreads} workers, started on the first parallel call
+     * and reused by all later ones until {@link #close()}.
+     * Calls over fewer than {@code inlineThreshold} values run on the caller thread.
+     *
+     * @param poolThreads     number of pool workers
+     * @param inlineThreshold minimum number of values to run a call in the pool
+     */
+    public IterativeParallelism(int poolThreads, int inlineThreshold) {
+        this(poolThreads, inlineThreshold, 1);
+    }
+
+    /**
+     * Same as {@link #IterativeParallelism(int, int)}, but every thread also gets at least {@code minPerThread} values.
+     *
+     * @param poolThreads     number of pool workers
+     * @param inlineThreshold minimum number of values to run a call in the pool
+     * @param minPerThread    minimum number of values per thread
+     */
+    public IterativeParallelism(int poolThreads, int inlineThreshold, int minPerThread) {
+        this(null, null, poolThreads, inlineThreshold, checkMinPerThread(minPerThread));
+        if (poolThreads <= 0) {
+            throw new IllegalArgumentException("Pool threads count must be greater than zero");
+        }
+        if (inlineThreshold < 0) {
+            throw new IllegalArgumentException("Inline threshold must be not negative");
+        }
+    }
+
+    private IterativeParallelism(ParallelMapper parallelMapper, ForkJoinPool forkJoinPool, int poolThreads, int inlineThreshold,
+                                 int minPerThread) {
         this.parallelMapper = parallelMapper;
+        this.forkJoinPool = forkJoinPool;
+        this.poolThreads = poolThreads;
+        this.inlineThreshold = inlineThreshold;
+        this.minPerThread = minPerThread;
     }
 
+    private static int checkMinPerThread(int minPerThread) {
+        if (minPerThread <= 0) {
+            throw new IllegalArgumentException("Minimum values per thread must be greater than zero");
+        }
+        return minPerThread;
+    }
+
+    /**
+     * Estimates how many cheap values a thread has to process to pay back handing work to it:
+     * the time to start and join a thread divided by the time to accumulate one value.
+     * Intended to be called once at startup, the result is an upper bound for pooled instances.
+     *
+     * @return minimum number of values per thread
+     * @throws InterruptedException if executing thread was interrupted.
+     */
+    public static int calibrateMinPerThread() throws InterruptedException {
+        long handoff = Long.MAX_VALUE;
+        double perValue = Double.MAX_VALUE;
+        final List<Integer> values = IntStream.range(0, CALIBRATION_VALUES).boxed().toList();
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        for (int i = 0; i < CALIBRATION_ROUNDS; ++i) {
+            long start = System.nanoTime();
+            final Thread thread = new Thread(() -> {
+            });
+            thread.start();
+            thread.join();
+            handoff = Math.min(handoff, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            accumulate(0, values, (it) -> it % 3 == 1 ? 1 : 0, Integer::sum, (it) -> false, stopped);
+            perValue = Math.min(perValue, (double) Math.max(1, System.nanoTime() - start) / values.size());
+        }
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.ceil(handoff / perValue)));
+    }
+
+    private static ForkJoinPool checkNotNull(ForkJoinPool forkJoinPool) {
+        if (forkJoinPool == null) {
+            throw new IllegalArgumentException("Fork join pool must be not null");
+        }
+        return forkJoinPool;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Every range is concatenated into an exactly sized string, and the ranges are joined in one final allocation.
+     */
     @Override
     public String join(int threads, List<?> values) throws InterruptedException {
-        return parallelWork(threads, values, Object::toString, StringBuilder::new, (sb, e) -> {
-            sb.append(e);
-            return sb;
-        }, (sb1, sb2) -> {
-            sb1.append(sb2);
-            return sb1;
-        }).toString();
+        checkThreads(threads);
+        final List<?> list = randomAccess(values);
+        if (list.isEmpty()) {
+            return "";
+        }
+        return String.join("", joinRanges(threads, list));
+    }
+
+    /**
+     * Joins values to string and writes it to the given writer instead of materializing the whole string.
+     * Values are processed in consecutive windows, so at most one window of strings is held in memory.
+     *
+     * @param threads number of concurrent threads.
+     * @param values  values to join.
+     * @param writer  writer to write joined results of {@link #toString()} call on each value to.
+     * @throws InterruptedException if executing thread was interrupted.
+     * @throws IOException          if writing failed.
+     */
+    public void join(int threads, List<?> values, Writer writer) throws InterruptedException, IOException {
+        checkThreads(threads);
+        final int window = (int) Math.min(Integer.MAX_VALUE, (long) threads * JOIN_WINDOW_PER_THREAD);
+        final boolean randomAccess = values instanceof RandomAccess;
+        final Iterator<?> iterator = values.iterator();
+        for (int start = 0; start < values.size(); start += window) {
+            final int end = Math.min(values.size(), start + window);
+            final List<?> part;
+            if (randomAccess) {
+                part = values.subList(start, end);
+            } else {
+                // a single sequential pass over the whole list instead of walking from the head per window
+                final List<Object> copy = new ArrayList<>(end - start);
+                while (copy.size() < end - start) {
+                    copy.add(iterator.next());
+                }
+                part = copy;
+            }
+            for (String chunk : joinRanges(threads, part)) {
+                writer.write(chunk);
+            }
+        }
+    }
+
+    private List<String> joinRanges(int threads, List<?> values) throws InterruptedException {
+        return parallelRanges(threads, values.size(), (range) -> {
+            final String[] strings = new String[range.size()];
+            int i = 0;
+            for (Object value : values.subList(range.from(), range.to())) {
+                strings[i++] = value.toString();
+            }
+            return new ArrayList<>(List.of(String.join("", strings)));
+        }, ArrayList::new, (l1, l2) -> {
+            l1.addAll(l2);
+            return l1;
+        }, false);
     }
 
+    /**
+     * {@inheritDoc}
+     * Matches are marked in a first pass and scattered into an exactly sized fixed-size list in a second one.
+     * The result is always fixed-size, even for empty values: elements can be replaced, but not added or removed.
+     */
     @Override
     public <T> List<T> filter(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
-        return parallelWork(threads, values, Function.identity(), ArrayList::new, (l, e) -> {
-            if (predicate.test(e)) {
-                l.add(e);
+        checkThreads(threads);
+        final List<? extends T> list = randomAccess(values);
+        final boolean[] matches = new boolean[list.size()];
+        final List<RangeCount> counts = parallelRanges(threads, list.size(), (range) -> {
+            int count = 0;
+            int i = range.from();
+            for (T value : list.subList(range.from(), range.to())) {
+                matches[i] = predicate.test(value);
+                count += matches[i++] ? 1 : 0;
             }
-            return l;
-        }, (l1, l2) -> {
+            return new ArrayList<>(List.of(new RangeCount(range, count)));
+        }, ArrayList::new, (l1, l2) -> {
             l1.addAll(l2);
             return l1;
-        });
+        }, false);
+        final List<Integer> offsets = new ArrayList<>(counts.size());
+        int total = 0;
+        for (RangeCount count : counts) {
+            offsets.add(total);
+            total += count.count();
+        }
+        final Object[] result = new Object[total];
+        final Function<Integer, Void> scatter = (ind) -> {
+            final Range range = counts.get(ind).range();
+            int offset = offsets.get(ind);
+            int i = range.from();
+            for (T value : list.subList(range.from(), range.to())) {
+                if (matches[i++]) {
+                    result[offset++] = value;
+                }
+            }
+            return null;
+        };
+        // one range means parallelRanges decided the call isn't worth a handoff, the scatter pass follows it
+        if (counts.size() == 1) {
+            scatter.apply(0);
+        } else {
+            runAll(scatter, IntStream.range(0, counts.size()).boxed().toList());
+        }
+        return asList(result);
     }
 
+    /**
+     * {@inheritDoc}
+     * Results are written by index straight into a fixed-size list of the known size.
+     * The result is always fixed-size, even for empty values: elements can be replaced, but not added or removed.
+     */
     @Override
     public <T, U> List<U> map(int threads, List<? extends T> values, Function<? super T, ? extends U> f) throws InterruptedException {
-        return parallelWork(threads, values, f, ArrayList::new, (l, e) -> {
-            l.add(e);
-            return l;
-        }, (l1, l2) -> {
-            l1.addAll(l2);
-            return l1;
-        });
+        checkThreads(threads);
+        final List<? extends T> list = randomAccess(values);
+        final Object[] result = new Object[list.size()];
+        parallelRanges(threads, list.size(), (range) -> {
+            int i = range.from();
+            for (T value : list.subList(range.from(), range.to())) {
+                result[i++] = f.apply(value);
+            }
+            return null;
+        }, () -> null, (a, b) -> null, false);
+        return asList(result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> asList(Object[] values) {
+        return (List<T>) Arrays.asList(values);
     }
 
 
@@ -70,69 +300,600 @@ public class IterativeParallelism implements ListIP {
 
     @Override
     public <T> boolean all(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
-        return !any(threads, values, predicate.negate());
+        return parallelWork(threads, values, predicate::test, () -> true, Boolean::logicalAnd, Boolean::logicalAnd, (it) -> !it);
     }
 
     @Override
     public <T> boolean any(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
-        return parallelWork(threads, values, predicate::test, () -> false, Boolean::logicalOr, Boolean::logicalOr);
+        return parallelWork(threads, values, predicate::test, () -> false, Boolean::logicalOr, Boolean::logicalOr, (it) -> it);
     }
 
     @Override
     public <T> int count(int threads, List<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
-        return parallelWork(threads, values, (it) -> predicate.test(it) ? 1 : 0, () -> 0, Integer::sum, Integer::sum);
+        final List<? extends T> list = randomAccess(values);
+        return primitiveWork(threads, list.size(), (range) -> {
+            int result = 0;
+            for (T value : list.subList(range.from(), range.to())) {
+                if (predicate.test(value)) {
+                    ++result;
+                }
+            }
+            return result;
+        }, 0, Integer::sum);
     }
 
-    private <T> List<T> createListIf(boolean need, int size) {
-        return need ? new ArrayList<>(Collections.nCopies(size, null)) : null;
+    @Override
+    public <T> T reduce(int threads, List<T> values, Monoid<T> monoid) throws InterruptedException {
+        return mapReduce(threads, values, Function.identity(), monoid);
     }
 
-    private <S, R, T> S parallelWork(int threads, List<? extends T> values, Function<? super T, ? extends R> mapper, Supplier<S> zeroSupplier,
-                                     BiFunction<S, ? super R, S> accumulator,
-                                     BinaryOperator<S> combiner) throws InterruptedException {
+    @Override
+    public <T, R> R mapReduce(int threads, List<T> values, Function<T, R> lift, Monoid<R> monoid) throws InterruptedException {
+        return parallelWork(threads, values, lift, monoid::getIdentity, monoid.getOperator(), monoid.getOperator(), (it) -> false, true);
+    }
+
+    /**
+     * Returns sum of {@code int} values.
+     *
+     * @param threads number of concurrent threads.
+     * @param values  values to sum.
+     * @return sum of values or zero, if no values are given.
+     * @throws InterruptedException if executing thread was interrupted.
+     */
+    public long sum(int threads, int[] values) throws InterruptedException {
+        return primitiveWork(threads, values.length, (range) -> {
+            long result = 0;
+            for (int i = range.from(); i < range.to(); ++i) {
+                result += values[i];
+            }
+            return result;
+        }, 0L, Long::sum);
+    }
+
+    /**
+     * Returns maximum of {@code int} values.
+     *
+     * @param threads number of concurrent threads.
+     * @param values  values to get maximum of.
+     * @return maximum of values.
+     * @throws InterruptedException             if executing thread was interrupted.
+     * @throws java.util.NoSuchElementException if no values are given.
+     */
+    public int maximum(int threads, int[] values) throws InterruptedException {
+        return extremum(threads, values, Math::max);
+    }
+
+    /**
+     * Returns minimum of {@code int} values.
+     *
+     * @param threads number of concurrent threads.
+     * @param values  values to get minimum of.
+     * @return minimum of values.
+     * @throws InterruptedException             if executing thread was interrupted.
+     * @throws java.util.NoSuchElementException if no values are given.
+     */
+    public int minimum(int threads, int[] values) throws InterruptedException {
+        return extremum(threads, values, Math::min);
+    }
+
+    /**
+     * Returns number of {@code int} values satisfying predicate.
+     *
+     * @param threads   number of concurrent threads.
+     * @param values    values to test.
+     * @param predicate test predicate.
+     * @return number of values satisfying predicate.
+     * @throws InterruptedException if executing thread was interrupted.
+     */
+    public int count(int threads, int[] values, IntPredicate predicate) throws InterruptedException {
+        return primitiveWork(threads, values.length, (range) -> {
+            int result = 0;
+            for (int i = range.from(); i < range.to(); ++i) {
+                if (predicate.test(values[i])) {
+                    ++result;
+                }
+            }
+            return result;
+        }, 0, Integer::sum);
+    }
+
+    /**
+     * Returns sum of {@code long} values.
+     *
+     * @param threads number of concurrent threads.
+     * @param values  values to sum.
+     * @return sum of values or zero, if no values are given.
+     * @throws InterruptedException if executing thread was interrupted.
+     */
+    public long sum(int threads, long[] values) throws InterruptedException {
+        return primitiveWork(threads, values.length, (range) -> {
+            long result = 0;
+            for (int i = range.from(); i < range.to(); ++i) {
+                result += values[i];
+            }
+            return result;
+        }, 0L, Long::sum);
+    }
+
+    /**
+     * Returns maximum of {@code long} values.
+     *
+     * @param threads number of concurrent threads.
+     * @param values  values to get maximum of.
+     * @return maximum of values.
+     * @throws InterruptedException             if executing thread was interrupted.
+     * @throws java.util.NoSuchElementException if no values are given.
+     */
+    public long maximum(int threads, long[] values) throws InterruptedException {
+        return extremum(threads, values, Math::max);
+    }
+
+    /**
+     * Returns minimum of {@code long} values.
+     *
+     * @param threads number of concurrent threads.
+     * @param values  values to get minimum of.
+     * @return minimum of values.
+     * @throws InterruptedException             if executing thread was interrupted.
+     * @throws java.util.NoSuchElementException if no values are given.
+     */
+    public long minimum(int threads, long[] values) throws InterruptedException {
+        return extremum(threads, values, Math::min);
+    }
+
+    /**
+     * Returns number of {@code long} values satisfying predicate.
+     *
+     * @param threads   number of concurrent threads.
+     * @param values    values to test.
+     * @param predicate test predicate.
+     * @return number of values satisfying predicate.
+     * @throws InterruptedException if executing thread was interrupted.
+     */
+    public int count(int threads, long[] values, LongPredicate predicate) throws InterruptedException {
+        return primitiveWork(threads, values.length, (range) -> {
+            int result = 0;
+            for (int i = range.from(); i < range.to(); ++i) {
+                if (predicate.test(values[i])) {
+                    ++result;
+                }
+            }
+            return result;
+        }, 0, Integer::sum);
+    }
+
+    /**
+     * Returns sum of {@code double} values.
+     *
+     * @param threads number of concurrent threads.
+     * @param values  values to sum.
+     * @return sum of values or zero, if no values are given.
+     * @throws InterruptedException if executing thread was interrupted.
+     */
+    public double sum(int threads, double[] values) throws InterruptedException {
+        return primitiveWork(threads, values.length, (range) -> {
+            double result = 0;
+            for (int i = range.from(); i < range.to(); ++i) {
+                result += values[i];
+            }
+            return result;
+        }, 0.0, Double::sum);
+    }
+
+    /**
+     * Returns maximum of {@code double} values.
+     *
+     * @param threads number of concurrent threads.
+     * @param values  values to get maximum of.
+     * @return maximum of values.
+     * @throws InterruptedException             if executing thread was interrupted.
+     * @throws java.util.NoSuchElementException if no values are given.
+     */
+    public double maximum(int threads, double[] values) throws InterruptedException {
+        return extremum(threads, values, Math::max);
+    }
+
+    /**
+     * Returns minimum of {@code double} values.
+     *
+     * @param threads number of concurrent threads.
+     * @param values  values to get minimum of.
+     * @return minimum of values.
+     * @throws InterruptedException             if executing thread was interrupted.
+     * @throws java.util.NoSuchElementException if no values are given.
+     */
+    public double minimum(int threads, double[] values) throws InterruptedException {
+        return extremum(threads, values, Math::min);
+    }
+
+    /**
+     * Returns number of {@code double} values satisfying predicate.
+     *
+     * @param threads   number of concurrent threads.
+     * @param values    values to test.
+     * @param predicate test predicate.
+     * @return number of values satisfying predicate.
+     * @throws InterruptedException if executing thread was interrupted.
+     */
+    public int count(int threads, double[] values, DoublePredicate predicate) throws InterruptedException {
+        return primitiveWork(threads, values.length, (range) -> {
+            int result = 0;
+            for (int i = range.from(); i < range.to(); ++i) {
+                if (predicate.test(values[i])) {
+                    ++result;
+                }
+            }
+            return result;
+        }, 0, Integer::sum);
+    }
+
+    /**
+     * Returns maximum value, pulling values from the iterator in bounded blocks.
+     * A {@link java.util.Spliterator} source can be passed through {@link java.util.Spliterators#iterator}.
+     * Which of several maximal values is returned is unspecified.
+     *
+     * @param threads    number of concurrent threads.
+     * @param values     values to get maximum of.
+     * @param comparator value comparator.
+     * @return maximum of given values.
+     * @throws InterruptedException   if executing thread was interrupted.
+     * @throws NoSuchElementException if no values are given.
+     */
+    public <T> T maximum(int threads, Iterator<? extends T> values, Comparator<? super T> comparator) throws InterruptedException {
+        return minimum(threads, values, comparator.reversed());
+    }
+
+    /**
+     * Returns minimum value, pulling values from the iterator in bounded blocks.
+     * Which of several minimal values is returned is unspecified.
+     *
+     * @param threads    number of concurrent threads.
+     * @param values     values to get minimum of.
+     * @param comparator value comparator.
+     * @return minimum of given values.
+     * @throws InterruptedException   if executing thread was interrupted.
+     * @throws NoSuchElementException if no values are given.
+     */
+    public <T> T minimum(int threads, Iterator<? extends T> values, Comparator<? super T> comparator) throws InterruptedException {
+        // null candidate means no values yet, so null values themselves are compared as usual
+        final BinaryOperator<Candidate<T>> f = (x, y) -> x == null ? y : y == null
+                || comparator.compare(x.value(), y.value()) <= 0 ? x : y;
+        final Candidate<T> result = streamWork(threads, values, Candidate::new, () -> null, f, f, (it) -> false);
+        if (result == null) {
+            throw new NoSuchElementException("No values are given");
+        }
+        return result.value();
+    }
+
+    /**
+     * Returns whether all values satisfy predicate, pulling values from the iterator in bounded blocks.
+     *
+     * @param threads   number of concurrent threads.
+     * @param values    values to test.
+     * @param predicate test predicate.
+     * @return whether all values satisfy predicate or {@code true}, if no values are given.
+     * @throws InterruptedException if executing thread was interrupted.
+     */
+    public <T> boolean all(int threads, Iterator<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
+        return streamWork(threads, values, predicate::test, () -> true, Boolean::logicalAnd, Boolean::logicalAnd, (it) -> !it);
+    }
+
+    /**
+     * Returns whether any of values satisfies predicate, pulling values from the iterator in bounded blocks.
+     *
+     * @param threads   number of concurrent threads.
+     * @param values    values to test.
+     * @param predicate test predicate.
+     * @return whether any value satisfies predicate or {@code false}, if no values are given.
+     * @throws InterruptedException if executing thread was interrupted.
+     */
+    public <T> boolean any(int threads, Iterator<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
+        return streamWork(threads, values, predicate::test, () -> false, Boolean::logicalOr, Boolean::logicalOr, (it) -> it);
+    }
+
+    /**
+     * Returns number of values satisfying predicate, pulling values from the iterator in bounded blocks.
+     *
+     * @param threads   number of concurrent threads.
+     * @param values    values to test.
+     * @param predicate test predicate.
+     * @return number of values satisfying predicate.
+     * @throws InterruptedException if executing thread was interrupted.
+     */
+    public <T> int count(int threads, Iterator<? extends T> values, Predicate<? super T> predicate) throws InterruptedException {
+        return streamWork(threads, values, (it) -> predicate.test(it) ? 1 : 0, () -> 0, Integer::sum, Integer::sum, (it) -> false);
+    }
+
+    /**
+     * Maps and reduces values using monoid, pulling values from the iterator in bounded blocks.
+     * Partial results of blocks are combined in iteration order, so the operator only has to be associative.
+     *
+     * @param threads number of concurrent threads.
+     * @param values  values to reduce.
+     * @param lift    mapping function.
+     * @param monoid  monoid to use.
+     * @return values reduced by provided monoid or {@link Monoid#getIdentity() identity} if no values specified.
+     * @throws InterruptedException if executing thread was interrupted.
+     */
+    public <T, R> R mapReduce(int threads, Iterator<T> values, Function<T, R> lift, Monoid<R> monoid) throws InterruptedException {
+        return streamWork(threads, values, lift, monoid::getIdentity, monoid.getOperator(), monoid.getOperator(), (it) -> false);
+    }
+
+    // subList of a non random access list walks from its head, which would make every range cost O(n)
+    private static <T> List<T> randomAccess(List<T> values) {
+        return values instanceof RandomAccess ? values : new ArrayList<>(values);
+    }
+
+    // boxes only once per range, never per element
+    private <S> S primitiveWork(int threads, int length, Function<Range, S> worker, S zero, BinaryOperator<S> combiner) throws InterruptedException {
+        checkThreads(threads);
+        if (length == 0) {
+            return zero;
+        }
+        return parallelRanges(threads, length, worker, () -> zero, combiner, false);
+    }
+
+    private int extremum(int threads, int[] values, IntBinaryOperator choice) throws InterruptedException {
+        requireNonEmpty(values.length);
+        return primitiveWork(threads, values.length, (range) -> {
+            int result = values[range.from()];
+            for (int i = range.from() + 1; i < range.to(); ++i) {
+                result = choice.applyAsInt(result, values[i]);
+            }
+            return result;
+        }, values[0], choice::applyAsInt);
+    }
+
+    private long extremum(int threads, long[] values, LongBinaryOperator choice) throws InterruptedException {
+        requireNonEmpty(values.length);
+        return primitiveWork(threads, values.length, (range) -> {
+            long result = values[range.from()];
+            for (int i = range.from() + 1; i < range.to(); ++i) {
+                result = choice.applyAsLong(result, values[i]);
+            }
+            return result;
+        }, values[0], choice::applyAsLong);
+    }
+
+    private double extremum(int threads, double[] values, DoubleBinaryOperator choice) throws InterruptedException {
+        requireNonEmpty(values.length);
+        return primitiveWork(threads, values.length, (range) -> {
+            double result = values[range.from()];
+            for (int i = range.from() + 1; i < range.to(); ++i) {
+                result = choice.applyAsDouble(result, values[i]);
+            }
+            return result;
+        }, values[0], choice::applyAsDouble);
+    }
+
+    private void requireNonEmpty(int length) {
+        if (length == 0) {
+            throw new NoSuchElementException("No values are given");
+        }
+    }
+
+    private void checkThreads(int threads) {
         if (threads <= 0) {
             throw new IllegalArgumentException("Not positive threads count");
         }
-        if (values.isEmpty()) {
+    }
+
+    private <S, R, T> S parallelWork(int threads, List<? extends T> values, Function<? super T, ? extends R> mapper, Supplier<S> zeroSupplier,
+                                     BiFunction<S, ? super R, S> accumulator,
+                                     BinaryOperator<S> combiner) throws InterruptedException {
+        return parallelWork(threads, values, mapper, zeroSupplier, accumulator, combiner, (it) -> false);
+    }
+
+    private <S, R, T> S parallelWork(int threads, List<? extends T> values, Function<? super T, ? extends R> mapper, Supplier<S> zeroSupplier,
+                                     BiFunction<S, ? super R, S> accumulator,
+                                     BinaryOperator<S> combiner, Predicate<? super S> isTerminal) throws InterruptedException {
+        return parallelWork(threads, values, mapper, zeroSupplier, accumulator, combiner, isTerminal, false);
+    }
+
+    /**
+     * Same as the non short-circuiting version, but as soon as some worker's partial result
+     * satisfies {@code isTerminal}, all workers stop scanning their ranges.
+     * With {@code treeCombine} set, partial results are combined pairwise in parallel, which pays off for expensive combiners.
+     */
+    private <S, R, T> S parallelWork(int threads, List<? extends T> values, Function<? super T, ? extends R> mapper, Supplier<S> zeroSupplier,
+                                     BiFunction<S, ? super R, S> accumulator,
+                                     BinaryOperator<S> combiner, Predicate<? super S> isTerminal,
+                                     boolean treeCombine) throws InterruptedException {
+        checkThreads(threads);
+        final List<? extends T> list = randomAccess(values);
+        if (list.isEmpty()) {
             return zeroSupplier.get();
         }
-        threads = Math.min(threads, values.size());
-        final List<Thread> threadsList = createListIf(parallelMapper == null, threads);
-        final List<S> threadsResults = createListIf(parallelMapper == null, threads);
-        final int sz = values.size() / threads; // :NOTE: деление на 0
-        final int remainder = values.size() % threads;
-        final List<List<? extends T>> parts = createListIf(parallelMapper != null, threads);
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        return parallelRanges(threads, list.size(), (range) -> accumulate(zeroSupplier.get(), list.subList(range.from(), range.to()),
+                mapper, accumulator, isTerminal, stopped), zeroSupplier, combiner, treeCombine);
+    }
+
+    /**
+     * Streaming counterpart of {@link #parallelWork}: every worker pulls blocks of at most {@code STREAM_BLOCK_SIZE}
+     * values from the shared iterator. Partial results are folded in iteration order as soon as they are contiguous
+     * with the blocks before them, and a worker doesn't take a new block while {@code PENDING_BLOCKS_PER_THREAD * threads}
+     * blocks are taken but not folded, so memory is bounded by the number of threads, not by the number of values.
+     */
+    private <S, R, T> S streamWork(int threads, Iterator<? extends T> values, Function<? super T, ? extends R> mapper, Supplier<S> zeroSupplier,
+                                   BiFunction<S, ? super R, S> accumulator,
+                                   BinaryOperator<S> combiner, Predicate<? super S> isTerminal) throws InterruptedException {
+        checkThreads(threads);
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        final BlockSource<T, S> source = new BlockSource<>(values, zeroSupplier.get(), combiner,
+                PENDING_BLOCKS_PER_THREAD * threads, stopped);
+        try {
+            runAll((ignored) -> {
+                final List<T> block = new ArrayList<>(STREAM_BLOCK_SIZE);
+                try {
+                    int index;
+                    // an interrupted caller interrupts the threads it waits for, the iterator may be unbounded
+                    while (!Thread.currentThread().isInterrupted() && (index = source.next(block)) >= 0) {
+                        source.complete(index, accumulate(zeroSupplier.get(), block, mapper, accumulator, isTerminal, stopped));
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        source.stop();
+                    }
+                } catch (InterruptedException e) {
+                    source.stop();
+                } catch (RuntimeException | Error e) {
+                    // the block of this worker is never folded, so the others must not wait for it
+                    source.stop();
+                    throw e;
+                }
+                return null;
+            }, Collections.nCopies(threads, null));
+        } catch (InterruptedException e) {
+            // workers of a pool may still be running
+            source.stop();
+            throw e;
+        }
+        return source.result();
+    }
+
+    private static <S, R, T> S accumulate(S result, Iterable<? extends T> values, Function<? super T, ? extends R> mapper,
+                                          BiFunction<S, ? super R, S> accumulator, Predicate<? super S> isTerminal,
+                                          AtomicBoolean stopped) {
+        for (T value : values) {
+            if (stopped.get()) {
+                break;
+            }
+            result = accumulator.apply(result, mapper.apply(value));
+            if (isTerminal.test(result)) {
+                stopped.set(true);
+                break;
+            }
+        }
+        return result;
+    }
+
+    private <S> S parallelRanges(int threads, int size, Function<Range, S> worker, Supplier<S> zeroSupplier,
+                                 BinaryOperator<S> combiner, boolean treeCombine) throws InterruptedException {
+        // not enough work for two threads to pay back the handoff
+        if (size < inlineThreshold || size / minPerThread < 2) {
+            return worker.apply(new Range(0, size));
+        }
+        threads = Math.min(threads, size / minPerThread);
+        if (forkJoinPool != null) {
+            // fork/join tasks already combine their halves as a parallel tree
+            return forkJoinWork(threads, size, worker, combiner);
+        }
+        final int sz = size / threads;
+        final int remainder = size % threads;
+        final List<Range> parts = new ArrayList<>(threads);
         for (int i = 0; i < threads; ++i) {
+            final int start = sz * i + Math.min(remainder, i);
+            final int end = start + sz + (i < remainder ? 1 : 0);
+            parts.add(new Range(start, end));
+        }
+        final List<S> results = runAll(worker, parts);
+        return treeCombine ? treeCombine(results, combiner) : results.stream().reduce(zeroSupplier.get(), combiner);
+    }
+
+    private <S> S treeCombine(List<S> results, BinaryOperator<S> combiner) throws InterruptedException {
+        List<S> level = results;
+        while (level.size() > 1) {
+            final List<S> current = level;
+            final List<Integer> pairs = IntStream.range(0, current.size() / 2).boxed().toList();
+            final Function<Integer, S> combinePair = (i) -> combiner.apply(current.get(2 * i), current.get(2 * i + 1));
+            final List<S> next = new ArrayList<>(pairs.size() == 1 ? Collections.singletonList(combinePair.apply(0)) : runAll(combinePair, pairs));
+            if (current.size() % 2 == 1) {
+                next.add(current.get(current.size() - 1));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    private <A, S> List<S> runAll(Function<? super A, ? extends S> task, List<? extends A> args) throws InterruptedException {
+        if (parallelMapper != null) {
+            return parallelMapper.map(task, args);
+        }
+        if (poolThreads > 0) {
+            return pool().map(task, args);
+        }
+        if (forkJoinPool != null) {
+            final List<ForkJoinTask<S>> tasks = new ArrayList<>(args.size());
+            for (A arg : args) {
+                tasks.add(forkJoinPool.submit(() -> task.apply(arg)));
+            }
+            final List<S> results = new ArrayList<>(args.size());
+            for (ForkJoinTask<S> forkJoinTask : tasks) {
+                results.add(forkJoinGet(forkJoinTask, tasks));
+            }
+            return results;
+        }
+        final List<Thread> threadsList = new ArrayList<>(args.size());
+        final List<S> threadsResults = new ArrayList<>(Collections.nCopies(args.size(), null));
+        for (int i = 0; i < args.size(); ++i) {
             final int ind = i;
-            final int start = sz * ind + Math.min(remainder, ind);
-            final int end = start + sz + (ind < remainder ? 1 : 0);
-            final List<? extends T> part = values.subList(start, end);
-            if (parallelMapper == null) {
-                Thread thread = new Thread(() -> threadsResults.set(ind, part.stream().map(mapper).
-                        reduce(zeroSupplier.get(), accumulator, combiner)));
-                threadsList.set(i, thread);
-                thread.start();
-            } else {
-                parts.set(i, part);
+            Thread thread = new Thread(() -> threadsResults.set(ind, task.apply(args.get(ind))));
+            threadsList.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threadsList) {
+            if (Thread.currentThread().isInterrupted()) {
+                stopThreads(threadsList, null);
             }
+            try {
+                thread.join(); // :NOTE: worker-потоки тоже останавливать
+            } catch (InterruptedException e) {
+                stopThreads(threadsList, e);
+            }
+        }
+        return threadsResults;
+    }
+
+    private <S> S forkJoinWork(int threads, int size, Function<Range, S> worker, BinaryOperator<S> combiner) throws InterruptedException {
+        final int leafSize = Math.max(1, size / (threads * LEAVES_PER_THREAD));
+        final ForkJoinTask<S> task = forkJoinPool.submit(new RangeTask<>(new Range(0, size), leafSize, worker, combiner));
+        return forkJoinGet(task, List.of(task));
+    }
+
+    private <S> S forkJoinGet(ForkJoinTask<S> task, List<? extends ForkJoinTask<?>> callTasks) throws InterruptedException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            callTasks.forEach(it -> it.cancel(true));
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(e.getCause());
         }
-        final List<S> finalThreadsResults;
-        if (parallelMapper == null) {
-            for (Thread thread : threadsList) {
-                if (Thread.currentThread().isInterrupted()) {
-                    stopThreads(threadsList, null);
+    }
+
+    private ParallelMapperImpl pool() {
+        ParallelMapperImpl result = pool;
+        if (result == null) {
+            synchronized (this) {
+                if (isClosed) {
+                    throw new IllegalStateException("IterativeParallelism is closed");
                 }
-                try {
-                    thread.join(); // :NOTE: worker-потоки тоже останавливать
-                } catch (InterruptedException e) {
-                    stopThreads(threadsList, e);
+                if (pool == null) {
+                    pool = new ParallelMapperImpl(poolThreads);
                 }
+                result = pool;
             }
-            finalThreadsResults = threadsResults;
-        } else {
-            finalThreadsResults = parallelMapper.map((it) -> it.stream().map(mapper).reduce(zeroSupplier.get(), accumulator, combiner), parts);
         }
-        return finalThreadsResults.stream().reduce(zeroSupplier.get(), combiner);
+        return result;
+    }
+
+    /**
+     * Stops the workers of the own pool, if it was started. Instances using a given
+     * {@link ParallelMapper} or {@link ForkJoinPool} leave it running.
+     */
+    @Override
+    public synchronized void close() {
+        isClosed = true;
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
     }
 
     private void stopThreads(List<Thread> threadsList, InterruptedException suppressed) throws InterruptedException {
@@ -150,4 +911,106 @@ public class IterativeParallelism implements ListIP {
         });
         throw exception;
     }
+
+    private record RangeCount(Range range, int count) {
+    }
+
+    private record Candidate<T>(T value) {
+    }
+
+    private static class BlockSource<T, S> {
+        private final Iterator<? extends T> values;
+        private final BinaryOperator<S> combiner;
+        private final int maxPending;
+        private final AtomicBoolean stopped;
+        private final Object lock = new Object();
+        // results of finished blocks waiting for an earlier one
+        private final Map<Integer, S> pending = new HashMap<>();
+        private S prefix;
+        private int blocks = 0;
+        private int folded = 0;
+
+        BlockSource(Iterator<? extends T> values, S zero, BinaryOperator<S> combiner, int maxPending, AtomicBoolean stopped) {
+            this.values = values;
+            this.prefix = zero;
+            this.combiner = combiner;
+            this.maxPending = maxPending;
+            this.stopped = stopped;
+        }
+
+        // returns index of the block in iteration order, or -1 if there are no values left or the work is stopped
+        int next(List<T> block) throws InterruptedException {
+            block.clear();
+            synchronized (lock) {
+                // the oldest block not folded is being processed, so its worker eventually wakes this one
+                while (!stopped.get() && blocks - folded >= maxPending) {
+                    lock.wait();
+                }
+                if (stopped.get()) {
+                    return -1;
+                }
+                while (block.size() < STREAM_BLOCK_SIZE && values.hasNext()) {
+                    block.add(values.next());
+                }
+                return block.isEmpty() ? -1 : blocks++;
+            }
+        }
+
+        void complete(int index, S result) {
+            synchronized (lock) {
+                pending.put(index, result);
+                while (pending.containsKey(folded)) {
+                    prefix = combiner.apply(prefix, pending.remove(folded++));
+                }
+                lock.notifyAll();
+            }
+        }
+
+        void stop() {
+            stopped.set(true);
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+
+        S result() {
+            synchronized (lock) {
+                return prefix;
+            }
+        }
+    }
+
+    private record Range(int from, int to) {
+        int size() {
+            return to - from;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class RangeTask<S> extends RecursiveTask<S> {
+        private final Range range;
+        private final int leafSize;
+        private final Function<Range, S> worker;
+        private final BinaryOperator<S> combiner;
+
+        RangeTask(Range range, int leafSize, Function<Range, S> worker, BinaryOperator<S> combiner) {
+            this.range = range;
+            this.leafSize = leafSize;
+            this.worker = worker;
+            this.combiner = combiner;
+        }
+
+        @Override
+        protected S compute() {
+            if (range.size() <= leafSize) {
+                return worker.apply(range);
+            }
+            final int mid = range.from() + range.size() / 2;
+            final RangeTask<S> left = new RangeTask<>(new Range(range.from(), mid), leafSize, worker, combiner);
+            final RangeTask<S> right = new RangeTask<>(new Range(mid, range.to()), leafSize, worker, combiner);
+            left.fork();
+            final S rightResult = right.compute();
+            return combiner.apply(left.join(), rightResult);
+        }
+    }
 }
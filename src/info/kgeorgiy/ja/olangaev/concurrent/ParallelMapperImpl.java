@@ -1,89 +1,421 @@
 package info.kgeorgiy.ja.olangaev.concurrent;
 
+import info.kgeorgiy.ja.olangaev.myutils.MyPair;
 import info.kgeorgiy.java.advanced.mapper.ParallelMapper;
 
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.stream.IntStream;
 
 public class ParallelMapperImpl implements ParallelMapper {
+    private static final int TASKS_PER_WORKER = 4;
+    private static final long TASK_NANOS = 1_000_000;
 
-    private final Queue<Runnable> queue = new ArrayDeque<>();
-    private final List<Thread> workers;
-    private final Runnable workerRunnable = () -> {
-        while (!Thread.currentThread().isInterrupted()) {
-            Runnable task;
-            synchronized (queue) {
-                while (queue.isEmpty()) {
-                    try {
-                        queue.wait();
-                    } catch (InterruptedException ignored) {
+    // calls with pending tasks, served round-robin: after taking a task a worker puts the call back to the tail,
+    // so a small call never waits for all tasks of a large one submitted before it
+    private final Queue<MapCall<?, ?>> calls = new ConcurrentLinkedQueue<>();
+    // one permit per calls queue entry, so workers park without any shared monitor
+    private final Semaphore queued = new Semaphore(0);
+    private final Set<Thread> workers = ConcurrentHashMap.newKeySet();
+    // submitted calls whose futures aren't completed yet, completed exceptionally by close
+    private final Set<MapCall<?, ?>> activeCalls = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger workersCount = new AtomicInteger(0);
+    // workers currently waiting for a task, compared with queued entries to decide whether to grow
+    private final AtomicInteger idleWorkers = new AtomicInteger(0);
+    private final int minThreads;
+    private final int maxThreads;
+    private final long keepAliveNanos;
+    private final ThreadFactory threadFactory;
+    private volatile boolean isClosed = false;
+    // null until enabled, every hot path reads it once and skips timing when it is null
+    private volatile ParallelMapperMetrics metrics = null;
+
+    private void runWorker() {
+        final Thread current = Thread.currentThread();
+        if (metrics != null) {
+            metrics.workerStarted(current);
+        }
+        boolean retired = false;
+        try {
+            // a task of a cancelled call may clear the interrupt sent by close, so the flag is checked too
+            while (!isClosed && !Thread.currentThread().isInterrupted()) {
+                final boolean acquired;
+                idleWorkers.incrementAndGet();
+                try {
+                    acquired = queued.tryAcquire(keepAliveNanos, TimeUnit.NANOSECONDS);
+                } finally {
+                    idleWorkers.decrementAndGet();
+                }
+                if (!acquired) {
+                    // an entry queued after this check may fail to start a worker while this one is still counted,
+                    // so the exit below checks for waiting entries again
+                    if (queued.availablePermits() == 0 && retire()) {
+                        retired = true;
                         return;
                     }
+                    continue;
                 }
-                task = queue.poll();
+                // null if the entry was removed by cancellation after the permit was released
+                final MapCall<?, ?> call = calls.poll();
+                final MapCall.Task task = call == null ? null : call.nextTask();
+                if (task == null) {
+                    continue;
+                }
+                if (call.hasNextTask()) {
+                    enqueue(call, 1);
+                }
+                final long elapsed = call.run(task);
+                final ParallelMapperMetrics currentMetrics = metrics;
+                if (currentMetrics != null && elapsed >= 0) {
+                    currentMetrics.taskCompleted(current, elapsed);
+                }
+            }
+        } catch (InterruptedException ignored) {
+        } finally {
+            workers.remove(current);
+            // retire has already given the slot back, any other exit, an Error included, frees it here
+            if (!retired) {
+                workersCount.decrementAndGet();
+            }
+            if (!isClosed && queued.availablePermits() > idleWorkers.get()) {
+                startWorker();
+            }
+            if (metrics != null) {
+                metrics.workerStopped(current);
             }
-            task.run();
         }
-    };
+    }
 
     public ParallelMapperImpl(int threadsCount) {
-        if (threadsCount <= 0) {
+        this(threadsCount, Thread::new);
+    }
+
+    /**
+     * Creates mapper with {@code threadsCount} workers created by the given factory.
+     *
+     * @param threadsCount  number of workers, i.e. maximum number of concurrently running tasks
+     * @param threadFactory factory used to create workers
+     */
+    public ParallelMapperImpl(int threadsCount, ThreadFactory threadFactory) {
+        this(threadsCount, threadsCount, Long.MAX_VALUE, TimeUnit.NANOSECONDS, threadFactory);
+    }
+
+    /**
+     * Creates mapper with elastic number of workers. At least {@code minThreads} workers are always kept,
+     * a new worker is started whenever more tasks are queued than there are idle workers, up to {@code maxThreads},
+     * and a worker above the minimum stops after staying idle for {@code keepAlive}.
+     *
+     * @param minThreads    number of workers kept even when idle
+     * @param maxThreads    maximum number of workers
+     * @param keepAlive     time an extra worker stays idle before it stops
+     * @param unit          unit of {@code keepAlive}
+     * @param threadFactory factory used to create workers
+     */
+    public ParallelMapperImpl(int minThreads, int maxThreads, long keepAlive, TimeUnit unit, ThreadFactory threadFactory) {
+        if (maxThreads <= 0) {
             throw new IllegalArgumentException("Threads count must be greater than zero");
         }
-        workers = IntStream.range(0, threadsCount).mapToObj((it) -> new Thread(workerRunnable)).toList();
-        workers.forEach(Thread::start);
+        if (minThreads < 0 || minThreads > maxThreads) {
+            throw new IllegalArgumentException("Minimum threads count must be between zero and maximum threads count");
+        }
+        if (keepAlive <= 0) {
+            throw new IllegalArgumentException("Keep alive time must be greater than zero");
+        }
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.keepAliveNanos = unit.toNanos(keepAlive);
+        this.threadFactory = threadFactory;
+        for (int i = 0; i < minThreads; ++i) {
+            startWorker();
+        }
+    }
+
+    private boolean startWorker() {
+        int count;
+        do {
+            count = workersCount.get();
+            if (count >= maxThreads || isClosed) {
+                return false;
+            }
+        } while (!workersCount.compareAndSet(count, count + 1));
+        final Thread worker = threadFactory.newThread(this::runWorker);
+        workers.add(worker);
+        worker.start();
+        if (isClosed) {
+            // close may have taken its snapshot of workers before this one was added
+            worker.interrupt();
+        }
+        return true;
+    }
+
+    private boolean retire() {
+        int count;
+        do {
+            count = workersCount.get();
+            if (count <= minThreads) {
+                return false;
+            }
+        } while (!workersCount.compareAndSet(count, count - 1));
+        return true;
+    }
+
+    /**
+     * Creates mapper running tasks on virtual threads, suitable for blocking functions.
+     * At most {@code maxConcurrency} tasks run at the same time.
+     *
+     * @param maxConcurrency maximum number of concurrently running tasks
+     * @return new mapper
+     * @throws UnsupportedOperationException if the runtime doesn't support virtual threads
+     */
+    public static ParallelMapperImpl ofVirtualThreads(int maxConcurrency) {
+        return new ParallelMapperImpl(maxConcurrency, virtualThreadFactory());
+    }
+
+    // looked up reflectively, so the class still compiles and runs on runtimes without virtual threads
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads aren't supported by this runtime", e);
+        }
     }
 
 
     @Override
     public <T, R> List<R> map(Function<? super T, ? extends R> f, List<? extends T> args) throws
             InterruptedException {
-        final List<R> result = new ArrayList<>(Collections.nCopies(args.size(), null));
-        final List<RuntimeException> resultRuntime = new ArrayList<>(Collections.nCopies(args.size(), null));
-        for (int i = 0; i < args.size(); ++i) {
-            int ind = i;
-            synchronized (queue) {
-                queue.add(() -> {
-                    try {
-                        result.set(ind, f.apply(args.get(ind)));
-                    } catch (RuntimeException e) {
-                        resultRuntime.set(ind, e);
-                    }
-                    synchronized (result) {
-                        result.notify();
+        final CompletableFuture<List<R>> future = mapAsync(f, args);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Same as {@link #map(Function, List)}, but waits at most the given time.
+     * If the time runs out or the caller is interrupted, the call is cancelled: its pending tasks are dropped
+     * and workers running its tasks are interrupted.
+     *
+     * @param f       function to map
+     * @param args    values to map
+     * @param timeout maximum time to wait
+     * @param unit    unit of {@code timeout}
+     * @return results in order of {@code args}
+     * @throws InterruptedException if the caller is interrupted while waiting
+     * @throws TimeoutException     if the results aren't ready in time
+     */
+    public <T, R> List<R> map(Function<? super T, ? extends R> f, List<? extends T> args, long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        final CompletableFuture<List<R>> future = mapAsync(f, args);
+        try {
+            return future.get(timeout, unit);
+        } catch (InterruptedException | TimeoutException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static RuntimeException unwrap(ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException runtimeException) {
+            return runtimeException;
+        }
+        if (e.getCause() instanceof Error error) {
+            throw error;
+        }
+        return new IllegalStateException(e.getCause());
+    }
+
+    /**
+     * Maps function {@code f} over specified {@code args} without blocking the caller.
+     * The future is completed by a worker thread, so dependent stages added without an executor run there.
+     * Cancelling the future cancels the call: its pending tasks are dropped and workers running its tasks are interrupted.
+     * If {@code f} throws an {@link Error}, or the mapper is closed before the call is done, the future fails with it.
+     *
+     * @param f    function to map
+     * @param args values to map
+     * @return future completed with results in order of {@code args}, or exceptionally
+     * with exceptions of all failed elements suppressed
+     * @throws IllegalStateException if the mapper is closed
+     */
+    public <T, R> CompletableFuture<List<R>> mapAsync(Function<? super T, ? extends R> f, List<? extends T> args) {
+        return mapAsync(f, args, (ind, value) -> {
+        });
+    }
+
+    /**
+     * Same as {@link #mapAsync(Function, List)}, but also passes every result to {@code onResult}
+     * together with its index as soon as it is computed. The callback is called concurrently from worker threads,
+     * an exception thrown by it counts as a failure of the element.
+     *
+     * @param f        function to map
+     * @param args     values to map
+     * @param onResult callback accepting index and result of every successfully mapped element
+     * @return future completed with results in order of {@code args}
+     */
+    public <T, R> CompletableFuture<List<R>> mapAsync(Function<? super T, ? extends R> f, List<? extends T> args,
+                                                      BiConsumer<Integer, ? super R> onResult) {
+        return submit(f, args, onResult, (ind, e) -> {
+        });
+    }
+
+    /**
+     * Maps function {@code f} over specified {@code args}, returning results in order of completion,
+     * so the first results can be processed before the slowest element is done.
+     * {@link Iterator#next()} blocks until the next result is ready and pairs it with its index in {@code args}.
+     * If the element failed, {@code next()} throws its exception instead, the following elements are still returned.
+     * If the whole call fails, because of an {@link Error}, cancellation or closing of the mapper,
+     * {@code next()} throws that failure and the iteration ends.
+     * If the waiting thread is interrupted, {@code next()} restores the interrupt flag and throws {@link IllegalStateException}.
+     *
+     * @param f    function to map
+     * @param args values to map
+     * @return iterator over index and result pairs in order of completion
+     */
+    public <T, R> Iterator<MyPair<Integer, R>> mapInCompletionOrder(Function<? super T, ? extends R> f, List<? extends T> args) {
+        final BlockingQueue<Completed<R>> completed = new LinkedBlockingQueue<>();
+        submit(f, args, (ind, value) -> completed.add(new Completed<>(ind, value, null)),
+                (ind, e) -> completed.add(new Completed<>(ind, null, e)))
+                // after a normal completion every element is already queued, so this only ends an aborted call
+                .whenComplete((result, e) -> {
+                    if (e != null) {
+                        completed.add(new Completed<>(-1, null, e));
                     }
                 });
-                queue.notify();
+        return new Iterator<>() {
+            private int returned = 0;
+
+            @Override
+            public boolean hasNext() {
+                return returned < args.size();
             }
-        }
-        boolean RuntimeThrown = false;
-        for (int i = 0; i < result.size(); ++i) {
-            synchronized (result) {
-                while (result.get(i) == null) {
-                    result.wait();
+
+            @Override
+            public MyPair<Integer, R> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("All results are already returned");
                 }
-                if (resultRuntime.get(i) != null) {
-                    RuntimeThrown = true;
+                final Completed<R> next;
+                try {
+                    next = completed.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for the next result", e);
+                }
+                if (next.index() < 0) {
+                    returned = args.size();
+                    if (next.exception() instanceof Error error) {
+                        throw error;
+                    }
+                    throw next.exception() instanceof RuntimeException runtimeException
+                            ? runtimeException : new IllegalStateException(next.exception());
                 }
+                ++returned;
+                if (next.exception() != null) {
+                    throw (RuntimeException) next.exception();
+                }
+                return new MyPair<>(next.index(), next.value());
             }
+        };
+    }
+
+    /**
+     * Starts collecting metrics of this mapper. Calls submitted before are not counted.
+     *
+     * @return metrics of this mapper, the same object on every invocation
+     */
+    public synchronized ParallelMapperMetrics enableMetrics() {
+        if (metrics == null) {
+            final ParallelMapperMetrics created = new ParallelMapperMetrics(this::unclaimedElements, workersCount::get);
+            workers.forEach(created::workerStarted);
+            metrics = created;
         }
-        if (RuntimeThrown) {
-            List<Integer> thrownIndexes = IntStream.range(0, resultRuntime.size())
-                    .filter(i -> resultRuntime.get(i) != null)
-                    .boxed()
-                    .toList();
-            RuntimeException exception = new RuntimeException("Get exception in these indexes " + thrownIndexes);
-            resultRuntime.stream()
-                    .filter(Objects::nonNull)
-                    .forEach(exception::addSuppressed);
-            throw exception;
+        return metrics;
+    }
+
+    // queued entries only say which calls have work left, not how much of it
+    private int unclaimedElements() {
+        long unclaimed = 0;
+        for (final MapCall<?, ?> call : activeCalls) {
+            unclaimed += call.unclaimed();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, unclaimed);
+    }
+
+    private <T, R> CompletableFuture<List<R>> submit(Function<? super T, ? extends R> f, List<? extends T> args,
+                                                     BiConsumer<Integer, ? super R> onResult,
+                                                     BiConsumer<Integer, RuntimeException> onFailure) {
+        final ParallelMapperMetrics currentMetrics = metrics;
+        final MapCall<T, R> call = new MapCall<>(f, args, onResult, onFailure, grainSize(args.size()), currentMetrics);
+        // added before the check, so either this call sees the flag or close sees the call
+        activeCalls.add(call);
+        if (isClosed) {
+            activeCalls.remove(call);
+            throw new IllegalStateException("Mapper is closed");
+        }
+        if (currentMetrics != null) {
+            currentMetrics.callSubmitted();
         }
-        return result;
+        call.future().whenComplete((result, e) -> {
+            activeCalls.remove(call);
+            if (e != null) {
+                // cancelled, failed with an error or closed: drop the tasks nobody will wait for
+                call.cancel();
+                calls.removeIf((it) -> it == call);
+            }
+            if (currentMetrics != null) {
+                currentMetrics.callCompleted();
+            }
+        });
+        enqueue(call, Math.min(maxThreads, args.size()));
+        return call.future();
+    }
+
+    private void enqueue(MapCall<?, ?> call, int entries) {
+        for (int i = 0; i < entries; ++i) {
+            calls.add(call);
+        }
+        queued.release(entries);
+        final int missing = queued.availablePermits() - idleWorkers.get();
+        int started = 0;
+        while (started < missing && startWorker()) {
+            ++started;
+        }
+    }
+
+    // contiguous range per task: cheap functions over long lists are not dominated by queue overhead,
+    // while short lists of expensive functions still get one element per task.
+    // This is only the upper bound, every call then adapts its grain to TASK_NANOS per task.
+    private int grainSize(int size) {
+        final int tasksLimit = maxThreads * TASKS_PER_WORKER;
+        return Math.max(1, (size + tasksLimit - 1) / tasksLimit);
     }
 
     @Override
     public void close() {
+        isClosed = true;
+        if (metrics != null) {
+            metrics.unregisterMBean();
+        }
         workers.forEach(Thread::interrupt);
         workers.forEach((it) -> {
             try {
@@ -91,5 +423,146 @@ public class ParallelMapperImpl implements ParallelMapper {
             } catch (InterruptedException ignored) {
             }
         });
+        activeCalls.forEach((it) -> it.future().completeExceptionally(new IllegalStateException("Mapper is closed")));
+        calls.clear();
+    }
+
+    private static class MapCall<T, R> {
+        private final Function<? super T, ? extends R> f;
+        private final List<? extends T> args;
+        private final BiConsumer<Integer, ? super R> onResult;
+        private final BiConsumer<Integer, RuntimeException> onFailure;
+        private final int maxGrain;
+        private final List<R> result;
+        private final List<RuntimeException> resultRuntime;
+        private final AtomicInteger nextStart = new AtomicInteger(0);
+        private final AtomicInteger remaining;
+        private final CompletableFuture<List<R>> future = new CompletableFuture<>();
+        // workers running tasks of this call, guarded by itself so that cancel never interrupts a worker that moved on
+        private final Set<Thread> running = new HashSet<>();
+        private volatile boolean isCancelled = false;
+        private volatile int grain = 1;
+        private final ParallelMapperMetrics metrics;
+        private final long submitNanos;
+        private final AtomicBoolean isStarted = new AtomicBoolean(false);
+
+        MapCall(Function<? super T, ? extends R> f, List<? extends T> args, BiConsumer<Integer, ? super R> onResult,
+                BiConsumer<Integer, RuntimeException> onFailure, int maxGrain, ParallelMapperMetrics metrics) {
+            this.f = f;
+            this.args = args;
+            this.onResult = onResult;
+            this.onFailure = onFailure;
+            this.maxGrain = maxGrain;
+            this.metrics = metrics;
+            this.submitNanos = metrics == null ? 0 : System.nanoTime();
+            this.result = new ArrayList<>(Collections.nCopies(args.size(), null));
+            this.resultRuntime = new ArrayList<>(Collections.nCopies(args.size(), null));
+            this.remaining = new AtomicInteger(args.size());
+            if (args.isEmpty()) {
+                complete();
+            }
+        }
+
+        CompletableFuture<List<R>> future() {
+            return future;
+        }
+
+        boolean hasNextTask() {
+            return nextStart.get() < args.size();
+        }
+
+        int unclaimed() {
+            return Math.max(0, args.size() - nextStart.get());
+        }
+
+        Task nextTask() {
+            while (true) {
+                final int start = nextStart.get();
+                if (start >= args.size()) {
+                    return null;
+                }
+                final int end = (int) Math.min(args.size(), (long) start + grain);
+                if (nextStart.compareAndSet(start, end)) {
+                    return new Task(start, end);
+                }
+            }
+        }
+
+        void cancel() {
+            nextStart.set(args.size());
+            synchronized (running) {
+                isCancelled = true;
+                running.forEach(Thread::interrupt);
+            }
+        }
+
+        // returns time spent on the task, or -1 if the call was cancelled
+        long run(Task task) {
+            final Thread current = Thread.currentThread();
+            synchronized (running) {
+                if (isCancelled) {
+                    return -1;
+                }
+                running.add(current);
+            }
+            final long start = System.nanoTime();
+            if (metrics != null && !isStarted.get() && isStarted.compareAndSet(false, true)) {
+                metrics.callStarted(start - submitNanos);
+            }
+            try {
+                for (int ind = task.from(); ind < task.to() && !isCancelled; ++ind) {
+                    try {
+                        final R value = f.apply(args.get(ind));
+                        result.set(ind, value);
+                        onResult.accept(ind, value);
+                    } catch (RuntimeException e) {
+                        resultRuntime.set(ind, e);
+                        onFailure.accept(ind, e);
+                    }
+                }
+            } catch (Throwable e) {
+                // an error, or an exception thrown by onFailure, fails the whole call instead of the worker
+                future.completeExceptionally(e);
+            } finally {
+                synchronized (running) {
+                    running.remove(current);
+                }
+            }
+            if (isCancelled || future.isCompletedExceptionally()) {
+                // the interrupt was meant for the cancelled task only, the worker goes on with other calls
+                Thread.interrupted();
+                return -1;
+            }
+            final int count = task.to() - task.from();
+            final long elapsed = Math.max(1, System.nanoTime() - start);
+            grain = (int) Math.max(1, Math.min(maxGrain, TASK_NANOS * count / elapsed));
+            if (remaining.addAndGet(-count) == 0) {
+                complete();
+            }
+            return elapsed;
+        }
+
+        private void complete() {
+            if (resultRuntime.stream().anyMatch(Objects::nonNull)) {
+                List<Integer> thrownIndexes = IntStream.range(0, resultRuntime.size())
+                        .filter(i -> resultRuntime.get(i) != null)
+                        .boxed()
+                        .toList();
+                RuntimeException exception = new RuntimeException("Get exception in these indexes " + thrownIndexes);
+                resultRuntime.stream()
+                        .filter(Objects::nonNull)
+                        .forEach(exception::addSuppressed);
+                future.completeExceptionally(exception);
+            } else {
+                future.complete(result);
+            }
+        }
+
+        record Task(int from, int to) {
+        }
+    }
+
+    // index -1 marks the end of a call that was cancelled, closed or failed with an error
+    private record Completed<R>(int index, R value, Throwable exception) {
     }
 }
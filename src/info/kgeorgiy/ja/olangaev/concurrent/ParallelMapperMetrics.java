@@ -0,0 +1,235 @@
+package info.kgeorgiy.ja.olangaev.concurrent;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Counters and latency histograms of a {@link ParallelMapperImpl}, see {@link ParallelMapperImpl#enableMetrics()}.
+ * Queue wait of a call is the time from its submission until a worker starts its first task,
+ * execution time is measured per task, i.e. per contiguous range of elements.
+ */
+public class ParallelMapperMetrics implements ParallelMapperMetricsMBean {
+    private final IntSupplier queueDepth;
+    private final IntSupplier workersCount;
+    private final LongAdder submittedCalls = new LongAdder();
+    private final LongAdder completedCalls = new LongAdder();
+    private final LongAdder completedTasks = new LongAdder();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram execution = new LatencyHistogram();
+    private final Map<Thread, WorkerStats> workers = new ConcurrentHashMap<>();
+    // stopped workers are folded in here, so an elastic pool doesn't accumulate entries
+    private final LongAdder stoppedBusyNanos = new LongAdder();
+    private final LongAdder stoppedAliveNanos = new LongAdder();
+    private volatile ObjectName objectName;
+
+    ParallelMapperMetrics(IntSupplier queueDepth, IntSupplier workersCount) {
+        this.queueDepth = queueDepth;
+        this.workersCount = workersCount;
+    }
+
+    void callSubmitted() {
+        submittedCalls.increment();
+    }
+
+    void callCompleted() {
+        completedCalls.increment();
+    }
+
+    void callStarted(long waitNanos) {
+        queueWait.record(waitNanos);
+    }
+
+    void taskCompleted(Thread worker, long elapsedNanos) {
+        completedTasks.increment();
+        execution.record(elapsedNanos);
+        final WorkerStats stats = workers.get(worker);
+        if (stats != null) {
+            stats.busyNanos().add(elapsedNanos);
+        }
+    }
+
+    void workerStarted(Thread worker) {
+        workers.putIfAbsent(worker, new WorkerStats(System.nanoTime(), new LongAdder()));
+    }
+
+    void workerStopped(Thread worker) {
+        final WorkerStats stats = workers.remove(worker);
+        if (stats != null) {
+            stoppedAliveNanos.add(System.nanoTime() - stats.startNanos());
+            stoppedBusyNanos.add(stats.busyNanos().sum());
+        }
+    }
+
+    /**
+     * Registers these metrics in the platform MBean server
+     * as {@code info.kgeorgiy.ja.olangaev.concurrent:type=ParallelMapper,name=<name>}.
+     * The bean is unregistered when the mapper is closed.
+     *
+     * @param name value of the {@code name} key of the object name
+     * @return registered object name
+     * @throws JMException if the name is invalid or already registered
+     */
+    public synchronized ObjectName registerMBean(String name) throws JMException {
+        if (objectName != null) {
+            throw new IllegalStateException("Metrics are already registered as " + objectName);
+        }
+        final ObjectName registered = new ObjectName(
+                ParallelMapperMetrics.class.getPackageName() + ":type=ParallelMapper,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, registered);
+        objectName = registered;
+        return registered;
+    }
+
+    synchronized void unregisterMBean() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException ignored) {
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public int getWorkers() {
+        return workersCount.getAsInt();
+    }
+
+    @Override
+    public long getSubmittedCalls() {
+        return submittedCalls.sum();
+    }
+
+    @Override
+    public long getCompletedCalls() {
+        return completedCalls.sum();
+    }
+
+    @Override
+    public long getCompletedTasks() {
+        return completedTasks.sum();
+    }
+
+    @Override
+    public long getQueueWaitP50() {
+        return queueWait.percentile(0.5);
+    }
+
+    @Override
+    public long getQueueWaitP99() {
+        return queueWait.percentile(0.99);
+    }
+
+    @Override
+    public long getExecutionP50() {
+        return execution.percentile(0.5);
+    }
+
+    @Override
+    public long getExecutionP99() {
+        return execution.percentile(0.99);
+    }
+
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    public LatencyHistogram getExecution() {
+        return execution;
+    }
+
+    /**
+     * Returns share of time workers spent running tasks, over all workers since metrics were enabled.
+     *
+     * @return busy time divided by alive time, {@code 0} if no time has passed
+     */
+    @Override
+    public double getUtilization() {
+        final long now = System.nanoTime();
+        long busy = stoppedBusyNanos.sum();
+        long alive = stoppedAliveNanos.sum();
+        for (final WorkerStats stats : workers.values()) {
+            busy += stats.busyNanos().sum();
+            alive += now - stats.startNanos();
+        }
+        return alive == 0 ? 0 : (double) busy / alive;
+    }
+
+    /**
+     * Returns busy ratio of every running worker since it started or since metrics were enabled.
+     *
+     * @return worker thread name to share of its time spent running tasks
+     */
+    public Map<String, Double> getWorkerUtilization() {
+        final long now = System.nanoTime();
+        return workers.entrySet().stream().collect(Collectors.toMap(
+                (it) -> it.getKey().getName(),
+                (it) -> (double) it.getValue().busyNanos().sum() / Math.max(1, now - it.getValue().startNanos()),
+                (a, b) -> a));
+    }
+
+    /**
+     * Histogram with power of two buckets: bucket {@code i > 0} counts values in {@code [2^(i-1), 2^i)}.
+     */
+    public static class LatencyHistogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+
+        void record(long nanos) {
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+        }
+
+        public long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); ++i) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * Returns upper bound of the bucket containing the given quantile.
+         *
+         * @param quantile quantile between {@code 0} and {@code 1}
+         * @return value in nanoseconds, {@code 0} if nothing was recorded
+         */
+        public long percentile(double quantile) {
+            final long[] counts = buckets();
+            long total = 0;
+            for (final long count : counts) {
+                total += count;
+            }
+            final long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return i == Long.SIZE - 1 ? Long.MAX_VALUE : 1L << i;
+                }
+            }
+            return 0;
+        }
+
+        public long[] buckets() {
+            final long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; ++i) {
+                counts[i] = buckets.get(i);
+            }
+            return counts;
+        }
+    }
+
+    private record WorkerStats(long startNanos, LongAdder busyNanos) {
+    }
+}
@@ -0,0 +1,31 @@
+package info.kgeorgiy.ja.olangaev.concurrent;
+
+/**
+ * JMX view of {@link ParallelMapperMetrics}. Latencies are in nanoseconds.
+ */
+public interface ParallelMapperMetricsMBean {
+    /**
+     * Returns number of elements of running calls not taken by any worker yet.
+     *
+     * @return unclaimed elements count
+     */
+    int getQueueDepth();
+
+    int getWorkers();
+
+    long getSubmittedCalls();
+
+    long getCompletedCalls();
+
+    long getCompletedTasks();
+
+    long getQueueWaitP50();
+
+    long getQueueWaitP99();
+
+    long getExecutionP50();
+
+    long getExecutionP99();
+
+    double getUtilization();
+}
@@ -3,18 +3,50 @@ package info.kgeorgiy.ja.olangaev.hello;
 import info.kgeorgiy.ja.olangaev.myutils.MyUtilities;
 import info.kgeorgiy.java.advanced.hello.HelloServer;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public abstract class AbstractUDPServer implements HelloServer {
     protected final static byte[] Answer = ("Hello, ").getBytes(StandardCharsets.UTF_8);
+    /**
+     * Prepends {@code "Hello, "} to the request, cheap enough to run on the receiving thread.
+     */
+    public static final RequestHandler HELLO_HANDLER = new RequestHandler() {
+        @Override
+        public int headroom() {
+            return Answer.length;
+        }
+
+        @Override
+        public boolean isCheap(ByteBuffer request) {
+            return true;
+        }
+
+        @Override
+        public void handle(ByteBuffer datagram) {
+            datagram.put(0, Answer).position(0);
+        }
+    };
+    protected final RequestHandler handler;
     protected ExecutorService workers;
 
     protected volatile boolean isStarted = false;
 
     protected int buffSize;
 
+    protected AbstractUDPServer() {
+        this(HELLO_HANDLER);
+    }
+
+    protected AbstractUDPServer(RequestHandler handler) {
+        if (handler == null) {
+            throw new IllegalArgumentException("Request handler must be not null");
+        }
+        this.handler = handler;
+    }
+
     @Override
     public void start(int port, int threads) {
         MyUtilities.checkBounds("Port", port, 0, 65535);
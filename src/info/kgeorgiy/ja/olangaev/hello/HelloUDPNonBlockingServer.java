@@ -1,149 +1,298 @@
 package info.kgeorgiy.ja.olangaev.hello;
 
-import info.kgeorgiy.ja.olangaev.myutils.MyPair;
 import info.kgeorgiy.ja.olangaev.myutils.MyUtilities;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class HelloUDPNonBlockingServer extends AbstractUDPServer {
-    private final ExecutorService worker = Executors.newSingleThreadExecutor();
-    private DatagramChannel channel;
-    private Selector selector;
-    private ByteBuffer mainBuffer;
-    private BlockingQueue<MyPair<SocketAddress, byte[]>> responsesQueue;
-    private BlockingQueue<ByteBuffer> workersBuffers;
-    private Phaser receiveBufferRelease;
+    private static final int DEFAULT_DRAIN_BUDGET = 64;
+    // largest UDP payload over IPv4, a longer request can't arrive whatever the socket receive buffer is
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+    private final int channelsCount;
+    private final int drainBudget;
+    private ExecutorService selectorWorkers;
+    private final List<Endpoint> endpoints = new ArrayList<>();
 
+    public HelloUDPNonBlockingServer() {
+        this(1);
+    }
 
-    private void receive(final SelectionKey key) {
-        try {
-            mainBuffer.clear();
-            final SocketAddress client = channel.receive(mainBuffer);
-            if (client == null) {
-                return;
-            }
-            mainBuffer.flip();
-            workers.submit(() -> handleRequest(client, key));
-            receiveBufferRelease.arriveAndAwaitAdvance();
-        } catch (IOException e) {
-            System.err.println("Error while writing response to buffer occurred" + System.lineSeparator() + e.getMessage());
-        }
+    /**
+     * Creates server listening on {@code channelsCount} channels bound to the same port with {@code SO_REUSEPORT},
+     * each served by its own selector thread, so the kernel spreads clients over them.
+     *
+     * @param channelsCount number of channels and selector threads
+     */
+    public HelloUDPNonBlockingServer(int channelsCount) {
+        this(channelsCount, DEFAULT_DRAIN_BUDGET);
     }
 
-    private void handleRequest(SocketAddress dest, SelectionKey key) {
-        ByteBuffer buffer = workersBuffers.poll();
-        if (buffer == null) {
-            throw new IllegalStateException("buffer in handle request is null");
-        }
-        buffer.clear();
-        buffer.put(Answer);
-        buffer.put(mainBuffer);
-        buffer.flip();
-        receiveBufferRelease.arrive();
-        byte[] response = new byte[buffer.limit()];
-        buffer.get(response);
-        if (responsesQueue.offer(new MyPair<>(dest, response))) {
-            key.interestOpsOr(SelectionKey.OP_WRITE);
-            selector.wakeup();
-        }
-        workersBuffers.add(buffer);
+    /**
+     * Same as {@link #HelloUDPNonBlockingServer(int)}, but also sets how many datagrams the selector thread
+     * receives and sends per readiness event before it returns to select, so one busy direction can't starve the other.
+     *
+     * @param channelsCount number of channels and selector threads
+     * @param drainBudget   maximum number of datagrams received and sent per readiness event
+     */
+    public HelloUDPNonBlockingServer(int channelsCount, int drainBudget) {
+        this(HELLO_HANDLER, channelsCount, drainBudget);
+    }
+
+    /**
+     * Creates server answering with the given handler. Requests the handler reports as cheap are handled
+     * right on the selector thread, the rest are handed to the worker pool.
+     *
+     * @param handler       builds responses
+     * @param channelsCount number of channels and selector threads
+     * @param drainBudget   maximum number of datagrams received and sent per readiness event
+     */
+    public HelloUDPNonBlockingServer(RequestHandler handler, int channelsCount, int drainBudget) {
+        super(handler);
+        MyUtilities.checkBounds("Channels", channelsCount, 1, Integer.MAX_VALUE);
+        MyUtilities.checkBounds("Drain budget", drainBudget, 1, Integer.MAX_VALUE);
+        this.channelsCount = channelsCount;
+        this.drainBudget = drainBudget;
     }
 
-    private void send(SelectionKey key) {
-        final MyPair<SocketAddress, byte[]> response = responsesQueue.poll();
-        if (response == null) {
-            throw new IllegalStateException("Response in send is null");
+    private class Endpoint {
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private final SelectionKey key;
+        private final Consumer<SelectionKey> keyConsumer = this::keyConsumer;
+        // datagrams not in flight, touched by the selector thread only
+        private final Queue<Datagram> freeDatagrams;
+        private final BlockingQueue<Datagram> responsesQueue;
+        // counts responses not sent yet, only its transitions from and to zero change OP_WRITE
+        private final AtomicInteger pendingResponses = new AtomicInteger(0);
+
+        Endpoint(DatagramChannel channel, Selector selector, SelectionKey key, int threads) {
+            this.channel = channel;
+            this.selector = selector;
+            this.key = key;
+            // requests handled inline hold datagrams too, with fewer than a drain budget of them
+            // every readiness event would run out of datagrams and flip OP_READ off and on again
+            final int datagrams = Math.max(threads, drainBudget);
+            this.freeDatagrams = new ArrayDeque<>(datagrams);
+            this.responsesQueue = new ArrayBlockingQueue<>(datagrams);
+            final int capacity = handler.headroom() + buffSize;
+            for (int i = 0; i < datagrams; ++i) {
+                freeDatagrams.add(new Datagram(ByteBuffer.allocateDirect(capacity)));
+            }
         }
-        key.interestOpsOr(SelectionKey.OP_READ);
-        selector.wakeup();
-        mainBuffer.clear();
-        mainBuffer.put(response.getSecond());
-        mainBuffer.flip();
-        try {
-            channel.send(mainBuffer, response.getFirst());
-        } catch (IOException e) {
-            System.err.println("Error while sending response occurred" + System.lineSeparator() + e.getMessage());
+
+        // request is received right after the handler headroom, so the response is built in place
+        private class Datagram implements Runnable {
+            private final ByteBuffer buffer;
+            private SocketAddress client;
+
+            Datagram(ByteBuffer buffer) {
+                this.buffer = buffer;
+            }
+
+            @Override
+            public void run() {
+                handle(true);
+            }
+
+            private void handle(boolean isWorker) {
+                try {
+                    handler.handle(buffer);
+                } catch (RuntimeException e) {
+                    // empty response, the selector releases the datagram without sending it
+                    buffer.clear().limit(0);
+                    System.err.println("Error while handling request occurred" + System.lineSeparator() + e.getMessage());
+                }
+                // counted before it is queued, so the selector never sees more queued responses than pending ones
+                final boolean wasEmpty = pendingResponses.getAndIncrement() == 0;
+                responsesQueue.add(this);
+                if (wasEmpty) {
+                    try {
+                        key.interestOpsOr(SelectionKey.OP_WRITE);
+                        if (isWorker) {
+                            selector.wakeup();
+                        }
+                    } catch (CancelledKeyException ignored) {
+                        // the server is being closed, the response is dropped
+                    }
+                }
+            }
         }
-    }
 
-    private void keyConsumer(SelectionKey key) {
-        if (!key.isValid()) {
-            return;
+        private void receive() {
+            for (int received = 0; received < drainBudget; ++received) {
+                final Datagram datagram = freeDatagrams.poll();
+                if (datagram == null) {
+                    // every datagram is in flight, the first one released turns reading back on
+                    key.interestOpsAnd(~SelectionKey.OP_READ);
+                    return;
+                }
+                try {
+                    datagram.buffer.clear().position(handler.headroom());
+                    datagram.client = channel.receive(datagram.buffer);
+                    if (datagram.client == null) {
+                        release(datagram);
+                        return;
+                    }
+                    datagram.buffer.limit(datagram.buffer.position()).position(handler.headroom());
+                    if (handler.isCheap(datagram.buffer)) {
+                        datagram.handle(false);
+                    } else {
+                        workers.execute(datagram);
+                    }
+                } catch (IOException e) {
+                    release(datagram);
+                    System.err.println("Error while writing response to buffer occurred" + System.lineSeparator() + e.getMessage());
+                    return;
+                }
+            }
+        }
+
+        private void release(Datagram datagram) {
+            datagram.client = null;
+            freeDatagrams.add(datagram);
+            if (freeDatagrams.size() == 1 && key.isValid()) {
+                key.interestOpsOr(SelectionKey.OP_READ);
+            }
         }
-        if (key.isReadable()) {
-            if (responsesQueue.remainingCapacity() == 0) {
-                key.interestOpsAnd(SelectionKey.OP_WRITE);
-            } else {
-                receive(key);
+
+        private void send() {
+            int sent = 0;
+            while (sent < drainBudget) {
+                final Datagram datagram = responsesQueue.peek();
+                if (datagram == null) {
+                    break;
+                }
+                try {
+                    if (datagram.buffer.hasRemaining() && channel.send(datagram.buffer, datagram.client) == 0) {
+                        // no room in the socket buffer, the datagram stays queued until the channel is writable again
+                        break;
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error while sending response occurred" + System.lineSeparator() + e.getMessage());
+                }
+                responsesQueue.poll();
+                release(datagram);
+                ++sent;
+            }
+            if (sent > 0 && pendingResponses.addAndGet(-sent) == 0) {
+                key.interestOpsAnd(~SelectionKey.OP_WRITE);
+                // a worker may have queued a response and set OP_WRITE before it was cleared
+                if (pendingResponses.get() > 0) {
+                    key.interestOpsOr(SelectionKey.OP_WRITE);
+                }
             }
         }
-        if (key.isWritable()) {
-            if (responsesQueue.size() == 0) {
-                key.interestOpsAnd(SelectionKey.OP_READ);
-            } else {
-                send(key);
+
+        private void keyConsumer(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isReadable()) {
+                receive();
+            }
+            if (key.isValid() && key.isWritable()) {
+                send();
             }
         }
-    }
 
-    private void startListen() {
-        worker.submit(() -> {
+        private void listen() {
             while (isStarted) {
                 try {
-                    selector.select(this::keyConsumer);
+                    selector.select(keyConsumer);
                 } catch (IOException e) {
                     System.err.println("Error while selection key occurred");
                 }
             }
-        });
+        }
+
+        private void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                selector.close();
+            }
+        }
+    }
+
+    private DatagramChannel openChannel(int port) throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (channelsCount > 1) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new UnsupportedOperationException("SO_REUSEPORT isn't supported, can't open several channels");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
     }
 
     @Override
     public void start(int port, int threads) {
         super.start(port, threads);
+        selectorWorkers = Executors.newFixedThreadPool(channelsCount);
+        buffSize = MAX_DATAGRAM_SIZE;
         try {
-            channel = DatagramChannel.open();
-            channel.bind(new InetSocketAddress(port));
-            buffSize = channel.socket().getReceiveBufferSize();
-            channel.configureBlocking(false);
-            selector = Selector.open();
-            channel.register(selector, SelectionKey.OP_READ);
-            mainBuffer = ByteBuffer.allocate(buffSize);
-            responsesQueue = new ArrayBlockingQueue<>(4 * threads);
-            workersBuffers = new ArrayBlockingQueue<>(threads);
-            receiveBufferRelease = new Phaser(2);
-            for (int i = 0; i < threads; ++i) {
-                workersBuffers.add(ByteBuffer.allocate(buffSize));
-            }
-            startListen();
+            int boundPort = port;
+            for (int i = 0; i < channelsCount; ++i) {
+                final DatagramChannel channel = openChannel(boundPort);
+                // with port 0 the rest of channels join the port chosen for the first one
+                boundPort = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+                final Selector selector;
+                final SelectionKey key;
+                try {
+                    selector = Selector.open();
+                    key = channel.register(selector, SelectionKey.OP_READ);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                endpoints.add(new Endpoint(channel, selector, key, threads));
+            }
+            endpoints.forEach((it) -> selectorWorkers.submit(it::listen));
         } catch (IOException e) {
             System.err.println("Error while starting server occurred");
             close();
             throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
         }
     }
 
     @Override
     public void close() {
         try {
-            if (channel != null) {
-                channel.close();
-            }
-            if (selector != null) {
-                selector.close();
+            for (final Endpoint endpoint : endpoints) {
+                endpoint.close();
             }
-            MyUtilities.shutdownAndAwait(worker);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            endpoints.clear();
+            if (selectorWorkers != null) {
+                MyUtilities.shutdownAndAwait(selectorWorkers);
+            }
         }
         super.close();
     }
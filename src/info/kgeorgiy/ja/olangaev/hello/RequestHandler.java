@@ -0,0 +1,38 @@
+package info.kgeorgiy.ja.olangaev.hello;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a request datagram into a response datagram in place.
+ */
+public interface RequestHandler {
+    /**
+     * Returns number of bytes reserved in front of every request, so a handler prepending data to the request
+     * doesn't need to move it.
+     *
+     * @return reserved bytes count
+     */
+    default int headroom() {
+        return 0;
+    }
+
+    /**
+     * Tells whether the request is cheap enough to be handled right on the thread that received it
+     * instead of being handed to a worker. The buffer must not be modified.
+     *
+     * @param request buffer with the request between its position and limit
+     * @return {@code true} to handle the request on the receiving thread
+     */
+    default boolean isCheap(ByteBuffer request) {
+        return false;
+    }
+
+    /**
+     * Builds the response. On entry the request is between position and limit of {@code datagram}
+     * and position equals {@link #headroom()}, on return the response must be between position and limit.
+     * The whole capacity of the buffer may be used.
+     *
+     * @param datagram buffer with the request
+     */
+    void handle(ByteBuffer datagram);
+}